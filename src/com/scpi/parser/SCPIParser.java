@@ -15,14 +15,21 @@
  */
 package com.scpi.parser;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * The <code>SCPIParser</code> is a general purpose command parser for
@@ -89,10 +96,17 @@ import java.util.regex.Pattern;
  * enabled by calling
  * {@link #setCacheQueriesWithArguments setCacheQueriesWithArguments(true)}.</p>
  *
+ * <h2>Validation</h2>
+ * <p>
+ * Scripts of program messages can be checked against the registered handlers
+ * without executing them by calling {@link #validate(java.lang.String) validate}.
+ * Every unresolved command is reported with its line and column.</p>
+ *
  */
 public class SCPIParser {
 
     private final ConcurrentHashMap<SCPIPath, SCPICommandHandler> handlers = new ConcurrentHashMap<>();
+    private final Set<SCPIPath> lastWriteWinsPaths = ConcurrentHashMap.newKeySet();
     private final ConcurrentHashMap<String, String> shortToLongCMD = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, List<SCPICommandCaller>> acceptCache = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, LongAdder> acceptCacheKeyFrequency = new ConcurrentHashMap<>();
@@ -100,7 +114,10 @@ public class SCPIParser {
     private static final Pattern upperMatch;
     private static final SCPICommandHandler nullCMDHandler;
     private static int MAX_CACHE_SIZE = 20;
+    private static final int VALIDATION_CHUNK_LINES = 4096;
     private static boolean CACHE_QUERIES_WITH_ARGUMENTS = false;
+    private volatile SCPITrafficRecorder trafficRecorder;
+    private volatile boolean coalesceCommands = false;
 
     static {
         tokenPatterns = buildLexer();
@@ -118,6 +135,30 @@ public class SCPIParser {
      * @param handler the method to associate with the path
      */
     public void addHandler(String path, SCPICommandHandler handler) {
+        addHandler(path, handler, false);
+    }
+
+    /**
+     * Adds a <code>SCPICommandHandler</code> for a specified SCPI path, and
+     * declares whether the handler is a "last-write-wins" setter.
+     *
+     * When command coalescing is enabled (refer to
+     * {@link #setCoalesceCommands setCoalesceCommands}), an invocation of a
+     * last-write-wins handler is skipped if the same handler is invoked again
+     * immediately afterwards in the same query. Any other command, including
+     * a different last-write-wins handler, is never reordered around it.
+     *
+     * @param path an absolute SCPI path
+     * @param handler the method to associate with the path
+     * @param lastWriteWins true if only the last of several consecutive
+     * invocations of the handler needs to be executed
+     * @throws IllegalArgumentException if <code>lastWriteWins</code> is true
+     * for a query path (ending in '?')
+     */
+    public void addHandler(String path, SCPICommandHandler handler, boolean lastWriteWins) {
+        if (lastWriteWins && isQuery(path.trim())) {
+            throw new IllegalArgumentException("a query cannot be last-write-wins: " + path);
+        }
         SCPIPath scpipath = new SCPIPath(path);
         Iterator<String> elements = scpipath.iterator();
 
@@ -128,6 +169,11 @@ public class SCPIParser {
                 shortToLongCMD.put(matcher.group(), element);
             }
         }
+        if (lastWriteWins) {
+            lastWriteWinsPaths.add(scpipath);
+        } else {
+            lastWriteWinsPaths.remove(scpipath);
+        }
         handlers.put(scpipath, handler);
     }
     
@@ -158,13 +204,27 @@ public class SCPIParser {
      * contains an error. The caller should handle this exception.
      */
     public String[] accept(String query) throws SCPIMissingHandlerException {
-        List<SCPICommandCaller> commands;
-        if (MAX_CACHE_SIZE > 0 && acceptCache.containsKey(query)) {
-            commands = acceptCache.get(query);
-            acceptCacheKeyFrequency.computeIfPresent(query, (k, v) -> {
-                v.increment();
-                return v;
-            });
+        final SCPITrafficRecorder recorder = trafficRecorder;
+        if (null == recorder) {
+            return process(query);
+        }
+        final long start = System.nanoTime();
+        try {
+            return process(query);
+        } finally {
+            recorder.record(query, start, System.nanoTime() - start);
+        }
+    }
+
+    private String[] process(String query) throws SCPIMissingHandlerException {
+        // a single lookup avoids observing an eviction between a
+        // containsKey/get pair, which would otherwise yield null
+        List<SCPICommandCaller> commands = (MAX_CACHE_SIZE > 0) ? acceptCache.get(query) : null;
+        if (null != commands) {
+            LongAdder frequency = acceptCacheKeyFrequency.get(query);
+            if (null != frequency) {
+                frequency.increment();
+            }
         } else {
             List<SCPIToken> tokens = lex(query);
             commands = parse(tokens);
@@ -178,37 +238,113 @@ public class SCPIParser {
                 }
             }
             if (MAX_CACHE_SIZE > 0 && !commandsContainsArgument) {
-                synchronized (this) {
-                    if (acceptCache.size() > MAX_CACHE_SIZE - 1) {
-                        String lowestFreqCmd = null;
-                        Integer lowestFrequency = Integer.MAX_VALUE;
-                        for (String key : acceptCacheKeyFrequency.keySet()) {
-                            Integer count = acceptCacheKeyFrequency.get(key).intValue();
-                            if (count < lowestFrequency) {
-                                lowestFrequency = count;
-                                lowestFreqCmd = key;
-                            }
-                        }
-                        acceptCacheKeyFrequency.remove(lowestFreqCmd);
-                        acceptCache.remove(lowestFreqCmd);
-                    }
-                    acceptCache.put(query, commands);
-                    acceptCacheKeyFrequency.computeIfAbsent(query, k -> {
-                        LongAdder longAdder = new LongAdder();
-                        longAdder.increment();
-                        return longAdder;
-                    });
-                }
+                cacheCommands(query, commands);
             }
         }
+        final boolean[] superseded = coalesceCommands ? findSupersededCommands(commands) : null;
         String[] results = new String[commands.size()];
         int index = 0;
         for (SCPICommandCaller cmd : commands) {
-            results[index++] = cmd.execute();
+            if (null == superseded || !superseded[index]) {
+                results[index] = cmd.execute();
+            }
+            index++;
         }
         return results;
     }
 
+    /* (non-Javadoc)
+     * Marks every last-write-wins command that is immediately followed by
+     * another invocation of the same handler. Only runs of identical setters
+     * are coalesced, so no command is ever reordered relative to another.
+     */
+    private boolean[] findSupersededCommands(List<SCPICommandCaller> commands) {
+        final boolean[] superseded = new boolean[commands.size()];
+        for (int i = commands.size() - 2; i >= 0; i--) {
+            SCPIPath path = commands.get(i).lastWriteWinsPath;
+            superseded[i] = null != path && path.equals(commands.get(i + 1).lastWriteWinsPath);
+        }
+        return superseded;
+    }
+
+    /**
+     * If set to true, then superseded invocations of last-write-wins handlers
+     * within a query are skipped. The result of a skipped command is
+     * <code>null</code>. Refer to
+     * {@link #addHandler(java.lang.String, com.scpi.parser.SCPIParser.SCPICommandHandler, boolean) addHandler}.
+     *
+     * @param newValue desired command coalescing state
+     */
+    public void setCoalesceCommands(boolean newValue) {
+        coalesceCommands = newValue;
+    }
+
+    /**
+     *
+     * @return the current state of command coalescing
+     */
+    public boolean isCoalesceCommands() {
+        return coalesceCommands;
+    }
+
+    /**
+     * Sets the recorder that captures every query passed to
+     * {@link #accept accept}, or <code>null</code> to stop recording (the
+     * default). Refer to {@link SCPITrafficRecorder}.
+     *
+     * @param recorder the recorder, or <code>null</code>
+     */
+    public void setTrafficRecorder(SCPITrafficRecorder recorder) {
+        trafficRecorder = recorder;
+    }
+
+    /**
+     *
+     * @return the current traffic recorder, or <code>null</code> if traffic is
+     * not being recorded
+     */
+    public SCPITrafficRecorder getTrafficRecorder() {
+        return trafficRecorder;
+    }
+
+    /* (non-Javadoc)
+     * Inserts parsed commands into the accept cache without locking. The
+     * eviction scan walks the cache keys, treating a missing frequency entry
+     * as zero, so a racing eviction can never leave an unevictable entry
+     * behind. Concurrent inserters may each evict an entry, so the cache can
+     * briefly drop below the limit, but it does not stay above it.
+     */
+    private void cacheCommands(String query, List<SCPICommandCaller> commands) {
+        acceptCacheKeyFrequency.computeIfAbsent(query, k -> {
+            LongAdder longAdder = new LongAdder();
+            longAdder.increment();
+            return longAdder;
+        });
+        if (null != acceptCache.putIfAbsent(query, commands)) {
+            return;
+        }
+        while (acceptCache.size() > MAX_CACHE_SIZE) {
+            String lowestFreqCmd = null;
+            long lowestFrequency = Long.MAX_VALUE;
+            for (String key : acceptCache.keySet()) {
+                if (key.equals(query)) {
+                    continue;
+                }
+                LongAdder frequency = acceptCacheKeyFrequency.get(key);
+                long count = (null != frequency) ? frequency.sum() : 0;
+                if (count < lowestFrequency) {
+                    lowestFrequency = count;
+                    lowestFreqCmd = key;
+                }
+            }
+            if (null == lowestFreqCmd) {
+                break;
+            }
+            acceptCache.remove(lowestFreqCmd);
+            acceptCacheKeyFrequency.remove(lowestFreqCmd);
+        }
+    }
+
     /* (non-Javadoc)
      * This command should not be used in production code.
      * It returns a reference to the internal key cache frequency map and
@@ -267,12 +403,7 @@ public class SCPIParser {
         for (SCPIToken token : tokens) {
             switch (token.tokenType) {
                 case COMMAND:
-                    // normalize all commands to long-version
-                    boolean isQuery = isQuery(token.data);
-                    String queryKey = getNonQueryPathElement(token.data);
-                    String longCmd = shortToLongCMD.get(queryKey);
-                    longCmd = (!isQuery) ? longCmd : longCmd + "?";
-                    activePath.append((null == longCmd) ? token.data : longCmd);
+                    activePath.append(toLongCommand(token.data));
                     inCommand = true;
                     break;
                 case ARGUMENT:
@@ -288,9 +419,10 @@ public class SCPIParser {
                     // try to handle the current path
                     SCPICommandHandler activeHandler = handlers.get(activePath);
                     if (null != activeHandler) {
-                        commands.add(new SCPICommandCaller(activeHandler, arguments.toArray(new String[arguments.size()])));
+                        SCPIPath lastWriteWinsPath = lastWriteWinsPaths.contains(activePath) ? activePath.copy() : null;
+                        commands.add(new SCPICommandCaller(activeHandler, arguments.toArray(new String[arguments.size()]), lastWriteWinsPath));
                     } else {
-                        commands.add(new SCPICommandCaller(nullCMDHandler, new String[]{}));
+                        commands.add(new SCPICommandCaller(nullCMDHandler, new String[]{}, null));
                         throw new SCPIMissingHandlerException(activePath.toString());
                     }
                     arguments.clear();
@@ -306,14 +438,131 @@ public class SCPIParser {
         return commands;
     }
 
+    private String toLongCommand(String command) {
+        // normalize all commands to long-version
+        boolean isQuery = isQuery(command);
+        String queryKey = getNonQueryPathElement(command);
+        String longCmd = shortToLongCMD.get(queryKey);
+        if (null == longCmd) {
+            return command;
+        }
+        return (!isQuery) ? longCmd : longCmd + "?";
+    }
+
+    /**
+     * Validates a script of program messages without executing any handlers.
+     *
+     * Each line of the script is treated as one program message. Every
+     * command is resolved against the registered handlers and all commands
+     * that cannot be resolved are reported, rather than stopping at the first
+     * error as {@link #accept accept} does. Characters that the parser would
+     * silently skip (for example, a sign in <code>VOLT -5</code>) are reported
+     * as unrecognized; argument separators (',') are not. Lines are validated in parallel.
+     *
+     * @param script the program messages to validate, separated by newlines
+     * @return the validation errors in script order (empty if the script is
+     * valid)
+     */
+    public List<SCPIValidationError> validate(String script) {
+        final String[] lines = script.split("\\r\\n|\\r|\\n", -1);
+        return validateLines(lines, lines.length, 1);
+    }
+
+    /**
+     * Validates a script of program messages without executing any handlers,
+     * reading {@value #VALIDATION_CHUNK_LINES} lines at a time and validating
+     * each chunk in parallel. This is suited to scripts that are too large to
+     * hold in memory.
+     *
+     * @param script a reader supplying program messages separated by newlines
+     * @return the validation errors in script order (empty if the script is
+     * valid)
+     * @throws IOException if the script cannot be read
+     * @see #validate(java.lang.String)
+     */
+    public List<SCPIValidationError> validate(Reader script) throws IOException {
+        final List<SCPIValidationError> errors = new ArrayList<>();
+        final BufferedReader reader = (script instanceof BufferedReader)
+                ? (BufferedReader) script : new BufferedReader(script);
+        final String[] chunk = new String[VALIDATION_CHUNK_LINES];
+        int firstLine = 1;
+        int count;
+        do {
+            count = 0;
+            String line;
+            while (count < chunk.length && (line = reader.readLine()) != null) {
+                chunk[count++] = line;
+            }
+            errors.addAll(validateLines(chunk, count, firstLine));
+            firstLine += count;
+        } while (count == chunk.length);
+        return errors;
+    }
+
+    private List<SCPIValidationError> validateLines(String[] lines, int count, int firstLine) {
+        return IntStream.range(0, count)
+                .parallel()
+                .mapToObj(i -> validateMessage(lines[i], firstLine + i))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+    }
+
+    private List<SCPIValidationError> validateMessage(String message, int line) {
+        final List<SCPIValidationError> errors = new ArrayList<>();
+        if (message.trim().isEmpty()) {
+            return errors;
+        }
+        final List<SCPIToken> unrecognized = new ArrayList<>();
+        final List<SCPIToken> tokens = lex(message, unrecognized);
+        for (SCPIToken token : unrecognized) {
+            errors.add(new SCPIValidationError(line, token.position + 1, null, token.data));
+        }
+        final SCPIPath activePath = new SCPIPath();
+        boolean inCommand = false;
+        int commandPosition = -1;
+        for (SCPIToken token : tokens) {
+            switch (token.tokenType) {
+                case COMMAND:
+                    if (commandPosition < 0) {
+                        commandPosition = token.position;
+                    }
+                    activePath.append(toLongCommand(token.data));
+                    inCommand = true;
+                    break;
+                case COLON:
+                    if (!inCommand) {
+                        activePath.clear();
+                        commandPosition = token.position;
+                    }
+                    break;
+                case SEMICOLON:
+                    if (!handlers.containsKey(activePath)) {
+                        int column = (commandPosition < 0 ? token.position : commandPosition) + 1;
+                        errors.add(new SCPIValidationError(line, column, activePath.toString(), null));
+                    }
+                    inCommand = false;
+                    commandPosition = -1;
+                    activePath.strip();
+                    break;
+                default:
+                    break;
+            }
+        }
+        errors.sort(Comparator.comparingInt(SCPIValidationError::getColumn));
+        return errors;
+    }
+
     private static class SCPICommandCaller {
 
         final SCPICommandHandler handler;
         final String[] args;
+        // non-null only for handlers registered as last-write-wins
+        final SCPIPath lastWriteWinsPath;
 
-        public SCPICommandCaller(SCPICommandHandler handler, String[] args) {
+        public SCPICommandCaller(SCPICommandHandler handler, String[] args, SCPIPath lastWriteWinsPath) {
             this.handler = handler;
             this.args = args;
+            this.lastWriteWinsPath = lastWriteWinsPath;
         }
 
         public String execute() {
@@ -427,6 +676,15 @@ public class SCPIParser {
     }
 
     private List<SCPIToken> lex(String input) {
+        return lex(input, null);
+    }
+
+    /* (non-Javadoc)
+     * If unrecognized is not null, every run of characters skipped between
+     * matches that changes meaning is added to it as a token with a null
+     * tokenType. Argument separators (',') are not reported.
+     */
+    private List<SCPIToken> lex(String input, List<SCPIToken> unrecognized) {
         ArrayList<SCPIToken> tokens = new ArrayList<>();
 
         // see optimization note for "tokenTypes" in SCPITokenType enum
@@ -434,7 +692,12 @@ public class SCPIParser {
 
         Matcher matcher = tokenPatterns.matcher(input);
         SCPITokenType prevTokenType = SCPITokenType.WHITESPACE;
+        int end = 0;
         while (matcher.find()) {
+            if (null != unrecognized && matcher.start() > end) {
+                addUnrecognized(unrecognized, input, end, matcher.start());
+            }
+            end = matcher.end();
             for (SCPITokenType tokenType : tokenTypes) {
                 String group = matcher.group(tokenType.name());
                 if (group != null) {
@@ -448,14 +711,14 @@ public class SCPIParser {
                             if (prevTokenType == SCPITokenType.COMMAND) {
                                 typeToAdd = SCPITokenType.ARGUMENT;
                             }
-                            tokens.add(new SCPIToken(typeToAdd, group));
+                            tokens.add(new SCPIToken(typeToAdd, group, matcher.start()));
                             prevTokenType = SCPITokenType.COMMAND;
                             break;
                         case COLON:
                         // fall through
                         case SEMICOLON:
                             if (tokenType != prevTokenType) {
-                                tokens.add(new SCPIToken(tokenType, null));
+                                tokens.add(new SCPIToken(tokenType, null, matcher.start()));
                                 prevTokenType = tokenType;
                             }
                             break;
@@ -466,8 +729,11 @@ public class SCPIParser {
                 }
             }
         }
+        if (null != unrecognized && input.length() > end) {
+            addUnrecognized(unrecognized, input, end, input.length());
+        }
         if (prevTokenType != SCPITokenType.SEMICOLON) {
-            tokens.add(new SCPIToken(SCPITokenType.SEMICOLON, null));
+            tokens.add(new SCPIToken(SCPITokenType.SEMICOLON, null, input.length()));
         }
         return tokens;
     }
@@ -503,13 +769,32 @@ public class SCPIParser {
 
         public SCPITokenType tokenType;
         public String data;
+        public int position;
 
-        SCPIToken(SCPITokenType tokenType, String data) {
+        SCPIToken(SCPITokenType tokenType, String data, int position) {
             this.tokenType = tokenType;
             this.data = data;
+            this.position = position;
+        }
+    }
+
+    private static void addUnrecognized(List<SCPIToken> unrecognized, String input, int start, int end) {
+        // trim argument separators and whitespace from both ends of the gap
+        while (start < end && isSeparator(input.charAt(start))) {
+            start++;
+        }
+        while (end > start && isSeparator(input.charAt(end - 1))) {
+            end--;
+        }
+        if (start < end) {
+            unrecognized.add(new SCPIToken(null, input.substring(start, end), start));
         }
     }
 
+    private static boolean isSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
     private static Pattern buildLexer() {
         final StringBuilder tokenPatternsBuffer = new StringBuilder();
         for (SCPITokenType tokenType : SCPITokenType.values()) {
@@ -529,6 +814,69 @@ public class SCPIParser {
         public String handle(String[] args);
     }
 
+    /**
+     * A command that could not be resolved, or characters that could not be
+     * lexed, while validating a script. Refer to
+     * {@link #validate(java.lang.String) validate}.
+     */
+    public static class SCPIValidationError {
+
+        private final int line;
+        private final int column;
+        private final String path;
+        private final String unrecognized;
+
+        private SCPIValidationError(int line, int column, String path, String unrecognized) {
+            this.line = line;
+            this.column = column;
+            this.path = path;
+            this.unrecognized = unrecognized;
+        }
+
+        /**
+         *
+         * @return the line of the script containing the command (1-based)
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         *
+         * @return the column at which the command or unrecognized characters
+         * start (1-based)
+         */
+        public int getColumn() {
+            return column;
+        }
+
+        /**
+         *
+         * @return the resolved SCPI path that has no registered handler, or
+         * <code>null</code> if this error reports unrecognized characters
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         *
+         * @return the characters that the parser would skip, or
+         * <code>null</code> if this error reports a missing handler
+         */
+        public String getUnrecognized() {
+            return unrecognized;
+        }
+
+        @Override
+        public String toString() {
+            if (null != unrecognized) {
+                return line + ":" + column + ": unrecognized \"" + unrecognized + "\"";
+            }
+            return line + ":" + column + ": no handler for " + path;
+        }
+    }
+
     /**
      * Base class for SCPI-related exceptions
      */
@@ -0,0 +1,388 @@
+/*
+ * Copyright [2014] [Nicholas Folse]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.scpi.parser;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A non-blocking, demand-driven processor that subscribes to a stream of
+ * program messages and publishes the result of
+ * {@link SCPIParser#accept accept} for each message to a single subscriber.
+ *
+ * <p>
+ * The processor follows the protocol of the Reactive Streams
+ * (<code>java.util.concurrent.Flow</code>) interfaces, so it can be wrapped by
+ * a <code>Flow.Processor</code> on Java 9 and later:</p>
+ * <ul>
+ * <li>Messages are only parsed and executed while the subscriber has
+ * outstanding demand (refer to {@link SCPISubscription#request request}), so a
+ * slow subscriber throttles parsing.</li>
+ * <li>The processor requests at most <code>capacity</code> messages from its
+ * upstream subscription, and requests more only as buffered messages are
+ * processed, so a slow subscriber also throttles the producer.</li>
+ * <li>Messages are processed in order on the supplied executor. One task
+ * processes up to <code>batchSize</code> messages before yielding, so small
+ * messages do not each cost a thread hop.</li>
+ * </ul>
+ *
+ * <h3>Errors</h3>
+ * <p>
+ * A message that fails to parse or execute (for example, because of a
+ * {@link SCPIParser.SCPIMissingHandlerException}) does not end the stream; its
+ * failure is published as an {@link SCPIResponse} and the following messages
+ * are processed normally. The stream ends with
+ * {@link SCPISubscriber#onError onError} only if the upstream signals an
+ * error, if the subscriber requests a non-positive number of responses, or if
+ * the executor rejects a task (with the {@link RejectedExecutionException}).
+ * If a subscriber callback throws, the subscription is treated as cancelled:
+ * the upstream is cancelled, buffered messages are discarded and the exception
+ * is rethrown on the executor thread.</p>
+ *
+ * <h3>Example Usage</h3>
+ * <pre>
+ * {@code SCPIStreamProcessor processor = new SCPIStreamProcessor(myParser, executor, 256, 32);
+ * processor.subscribe(myResponseSubscriber);
+ * myMessagePublisher.subscribe(processor);}
+ * </pre>
+ *
+ * <p>
+ * Producers that are not publishers can call {@link #offer offer} and
+ * {@link #complete complete} instead.</p>
+ */
+public class SCPIStreamProcessor implements SCPISubscriber<String> {
+
+    private final SCPIParser parser;
+    private final Executor executor;
+    private final int capacity;
+    private final int batchSize;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicReference<SCPISubscriber<? super SCPIResponse>> subscriber = new AtomicReference<>();
+    private final AtomicReference<SCPISubscription> upstream = new AtomicReference<>();
+    private volatile boolean done = false;
+    private volatile Throwable upstreamError;
+    private volatile boolean cancelled = false;
+    private volatile Throwable requestError;
+    private volatile boolean terminated = false;
+
+    /**
+     * Creates a processor for the specified parser.
+     *
+     * @param parser the parser that accepts the messages
+     * @param executor the executor on which messages are parsed and handlers
+     * are executed
+     * @param capacity the maximum number of buffered messages
+     * @param batchSize the maximum number of messages processed by one executor
+     * task
+     */
+    public SCPIStreamProcessor(SCPIParser parser, Executor executor, int capacity, int batchSize) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        }
+        this.parser = parser;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Subscribes to the responses of the processor. Only one subscriber is
+     * supported. The subscriber's {@link SCPISubscriber#onSubscribe onSubscribe}
+     * method is called before this method returns.
+     *
+     * @param subscriber the subscriber that receives the responses
+     * @throws IllegalStateException if the processor already has a subscriber
+     */
+    public void subscribe(SCPISubscriber<? super SCPIResponse> subscriber) {
+        if (!this.subscriber.compareAndSet(null, subscriber)) {
+            throw new IllegalStateException("SCPIStreamProcessor supports only one subscriber");
+        }
+        subscriber.onSubscribe(new SCPISubscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    requestError = new IllegalArgumentException("non-positive request: " + n);
+                } else {
+                    requested.getAndAccumulate(n, (current, add) -> {
+                        long sum = current + add;
+                        return (sum < 0) ? Long.MAX_VALUE : sum;
+                    });
+                }
+                schedule();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+            }
+        });
+        schedule();
+    }
+
+    /**
+     * Called by the upstream publisher. The processor immediately requests
+     * <code>capacity</code> messages. A second subscription is cancelled.
+     *
+     * @param subscription the upstream subscription
+     */
+    @Override
+    public void onSubscribe(SCPISubscription subscription) {
+        if (!upstream.compareAndSet(null, subscription) || cancelled || terminated) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(capacity);
+    }
+
+    /**
+     * Called by the upstream publisher with the next program message. The
+     * upstream must not send more messages than the processor has requested.
+     *
+     * @param message a program message, as passed to
+     * {@link SCPIParser#accept accept}
+     */
+    @Override
+    public void onNext(String message) {
+        if (!offer(message) && !done && !cancelled && !terminated) {
+            cancelUpstream();
+            onError(new IllegalStateException("upstream sent more messages than requested"));
+        }
+    }
+
+    /**
+     * Called by the upstream publisher if it fails. The error is passed to the
+     * subscriber once the buffered messages have been processed.
+     *
+     * @param error the cause of the failure
+     */
+    @Override
+    public void onError(Throwable error) {
+        upstreamError = error;
+        done = true;
+        schedule();
+    }
+
+    /**
+     * Called by the upstream publisher once all messages have been sent.
+     *
+     * @see #complete
+     */
+    @Override
+    public void onComplete() {
+        complete();
+    }
+
+    /**
+     * Offers a program message to the processor without blocking. This is a
+     * convenience for producers that do not implement the upstream side of
+     * the protocol; such producers must poll
+     * {@link #remainingCapacity remainingCapacity} to avoid refusals.
+     *
+     * @param message a program message, as passed to
+     * {@link SCPIParser#accept accept}
+     * @return true if the message was buffered, false if the buffer is full or
+     * the processor has been completed, cancelled or has failed (including
+     * when the executor rejects the task that would process the message)
+     */
+    public boolean offer(String message) {
+        if (done || cancelled || terminated) {
+            return false;
+        }
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.offer(message);
+        schedule();
+        return !terminated;
+    }
+
+    /**
+     *
+     * @return the number of messages that can currently be buffered
+     */
+    public int remainingCapacity() {
+        return Math.max(0, capacity - queued.get());
+    }
+
+    /**
+     * Signals that no further messages will be offered. The subscriber's
+     * {@link SCPISubscriber#onComplete onComplete} method is called once all
+     * buffered messages have been processed.
+     */
+    public void complete() {
+        done = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (null != subscriber.get() && !terminated && wip.getAndIncrement() == 0) {
+            executeDrain();
+        }
+    }
+
+    /* (non-Javadoc)
+     * Must only be called while holding wip. A rejected task would leave wip
+     * held forever, so rejection ends the stream instead; holding wip means
+     * no drain can signal the subscriber concurrently.
+     */
+    private void executeDrain() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            terminated = true;
+            queue.clear();
+            cancelUpstream();
+            subscriber.get().onError(e);
+        }
+    }
+
+    private void cancelUpstream() {
+        SCPISubscription subscription = upstream.get();
+        if (null != subscription) {
+            subscription.cancel();
+        }
+    }
+
+    /* (non-Javadoc)
+     * Only one drain runs at a time (guarded by wip), so the subscriber is
+     * always signalled serially and messages are processed in order.
+     */
+    private void drain() {
+        final SCPISubscriber<? super SCPIResponse> target = subscriber.get();
+        int missed = 1;
+        try {
+            do {
+                if (terminated || cancelled) {
+                    terminated = true;
+                    queue.clear();
+                    return;
+                }
+                if (null != requestError) {
+                    terminated = true;
+                    queue.clear();
+                    cancelUpstream();
+                    target.onError(requestError);
+                    return;
+                }
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && emitted < batchSize) {
+                    String message = queue.poll();
+                    if (null == message) {
+                        break;
+                    }
+                    queued.decrementAndGet();
+                    SCPIResponse response;
+                    try {
+                        response = new SCPIResponse(message, parser.accept(message), null);
+                    } catch (Exception e) {
+                        response = new SCPIResponse(message, null, e);
+                    }
+                    target.onNext(response);
+                    emitted++;
+                    if (cancelled) {
+                        break;
+                    }
+                }
+                if (emitted > 0) {
+                    if (demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                    SCPISubscription subscription = upstream.get();
+                    if (null != subscription && !done && !cancelled) {
+                        subscription.request(emitted);
+                    }
+                }
+                if (done && queue.isEmpty() && !cancelled) {
+                    terminated = true;
+                    if (null != upstreamError) {
+                        target.onError(upstreamError);
+                    } else {
+                        target.onComplete();
+                    }
+                    return;
+                }
+                if (emitted == batchSize) {
+                    // yield the executor thread; wip is still held, so the
+                    // continuation is the only drain that can run
+                    executeDrain();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        } catch (RuntimeException | Error e) {
+            // a callback broke the protocol: treat the subscription as
+            // cancelled and release wip so that no drain is left pending
+            terminated = true;
+            queue.clear();
+            cancelUpstream();
+            wip.set(0);
+            throw e;
+        }
+    }
+
+    /**
+     * The response to one program message.
+     */
+    public static class SCPIResponse {
+
+        private final String message;
+        private final String[] results;
+        private final Exception error;
+
+        SCPIResponse(String message, String[] results, Exception error) {
+            this.message = message;
+            this.results = results;
+            this.error = error;
+        }
+
+        /**
+         *
+         * @return the program message that produced this response
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         *
+         * @return the results returned by {@link SCPIParser#accept accept}, or
+         * <code>null</code> if the message failed
+         */
+        public String[] getResults() {
+            return results;
+        }
+
+        /**
+         *
+         * @return the exception raised while processing the message (usually
+         * a {@link SCPIParser.SCPIMissingHandlerException}), or
+         * <code>null</code> if the message succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright [2014] [Nicholas Folse]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.scpi.parser;
+
+/**
+ * Receives the items of a stream. The methods mirror
+ * <code>java.util.concurrent.Flow.Subscriber</code> and are never called
+ * concurrently.
+ *
+ * @param <T> the type of the items
+ */
+public interface SCPISubscriber<T> {
+
+    /**
+     * Called once, before any other method.
+     *
+     * @param subscription the subscription used to request items
+     */
+    public void onSubscribe(SCPISubscription subscription);
+
+    /**
+     * Called with the next item, no more often than requested.
+     *
+     * @param item the next item
+     */
+    public void onNext(T item);
+
+    /**
+     * Called once if the stream fails. No further methods are called.
+     *
+     * @param error the cause of the failure
+     */
+    public void onError(Throwable error);
+
+    /**
+     * Called once after the last item. No further methods are called.
+     */
+    public void onComplete();
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright [2014] [Nicholas Folse]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.scpi.parser;
+
+/**
+ * Controls the demand of an {@link SCPISubscriber}. The methods mirror
+ * <code>java.util.concurrent.Flow.Subscription</code>.
+ */
+public interface SCPISubscription {
+
+    /**
+     * Requests up to <code>n</code> additional items.
+     *
+     * @param n the number of items (must be positive)
+     */
+    public void request(long n);
+
+    /**
+     * Stops the delivery of items.
+     */
+    public void cancel();
+}
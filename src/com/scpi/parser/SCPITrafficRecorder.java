@@ -0,0 +1,285 @@
+/*
+ * Copyright [2014] [Nicholas Folse]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.scpi.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the program messages accepted by an {@link SCPIParser} to a
+ * compact, append-only binary log that can be fed back to a parser with
+ * {@link SCPITrafficReplay}.
+ *
+ * <p>
+ * Recording is enabled by passing a recorder to
+ * {@link SCPIParser#setTrafficRecorder setTrafficRecorder}. Calls to
+ * {@link SCPIParser#accept accept} only enqueue an entry on a bounded,
+ * lock-free queue; encoding and I/O happen on a background flusher thread. If
+ * the flusher falls behind, entries are dropped rather than buffered without
+ * limit. The recorder must be closed to write any remaining entries.</p>
+ *
+ * <h3>Log Format</h3>
+ * <p>
+ * The log starts with the {@link #MAGIC} number and {@link #VERSION}, both
+ * written as ints. Each entry then holds, in order: the time the message was
+ * accepted (nanoseconds since the recorder was created, as a long), the time
+ * spent parsing and executing the message (nanoseconds, as a long), the length
+ * of the message in bytes (as an int) and the message itself in UTF-8.</p>
+ *
+ * <h3>Example Usage</h3>
+ * <pre>
+ * {@code try (SCPITrafficRecorder recorder = new SCPITrafficRecorder(new FileOutputStream("traffic.bin"))) {
+ *   myParser.setTrafficRecorder(recorder);
+ *   ...
+ *   myParser.setTrafficRecorder(null);
+ * }}
+ * </pre>
+ */
+public class SCPITrafficRecorder implements Closeable {
+
+    /**
+     * The magic number at the start of every traffic log ("SCPI").
+     */
+    public static final int MAGIC = 0x53435049;
+
+    /**
+     * The traffic log format version written by this class.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The maximum length of a recorded message in bytes (UTF-8). Longer
+     * messages are dropped.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The number of entries buffered by default before entries are dropped.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConcurrentLinkedQueue<SCPITrafficEntry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final int capacity;
+    private final DataOutputStream out;
+    private final Thread flusher;
+    private final long origin;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    /**
+     * Creates a recorder that writes to the specified stream and buffers up to
+     * {@link #DEFAULT_CAPACITY} entries. The log header is written
+     * immediately.
+     *
+     * @param out the stream to which the traffic log is written. The stream is
+     * closed when the recorder is closed.
+     * @throws IOException if the log header cannot be written
+     */
+    public SCPITrafficRecorder(OutputStream out) throws IOException {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a recorder that writes to the specified stream. The log header
+     * is written immediately.
+     *
+     * @param out the stream to which the traffic log is written. The stream is
+     * closed when the recorder is closed.
+     * @param capacity the maximum number of entries waiting to be written.
+     * Entries recorded while the buffer is full are dropped (refer to
+     * {@link #getDroppedCount getDroppedCount}).
+     * @throws IOException if the log header cannot be written
+     */
+    public SCPITrafficRecorder(OutputStream out, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.origin = System.nanoTime();
+        this.flusher = new Thread(this::flushLoop, "SCPITrafficRecorder");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Records one accepted program message. This method does not block and is
+     * safe to call from many threads. Entries recorded after the recorder is
+     * closed or has failed, and <code>null</code> queries, are discarded.
+     * Entries recorded while the buffer is full are dropped and counted.
+     *
+     * @param query the program message passed to the parser
+     * @param startNanos the {@link System#nanoTime} at which the message was
+     * accepted
+     * @param durationNanos the time spent parsing and executing the message
+     */
+    public void record(String query, long startNanos, long durationNanos) {
+        if (closed || null == query) {
+            return;
+        }
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        pending.offer(new SCPITrafficEntry(startNanos - origin, durationNanos, query));
+    }
+
+    /**
+     *
+     * @return the number of entries dropped because the buffer was full or
+     * the message exceeded {@link #MAX_MESSAGE_LENGTH}
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void flushLoop() {
+        try {
+            while (!closed) {
+                if (!drain()) {
+                    out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (Throwable e) {
+            // any failure stops recording, so the queue cannot grow unbounded
+            failure = e;
+            closed = true;
+            pending.clear();
+        }
+    }
+
+    private boolean drain() throws IOException {
+        boolean wrote = false;
+        SCPITrafficEntry entry;
+        while ((entry = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            byte[] message = entry.query.getBytes(StandardCharsets.UTF_8);
+            if (message.length > MAX_MESSAGE_LENGTH) {
+                dropped.increment();
+                continue;
+            }
+            out.writeLong(entry.offsetNanos);
+            out.writeLong(entry.durationNanos);
+            out.writeInt(message.length);
+            out.write(message);
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    /**
+     * Stops recording, writes all pending entries and closes the underlying
+     * stream.
+     *
+     * @throws IOException if the log could not be written, or if recording
+     * stopped because of an earlier failure
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        closed = true;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // report the first failure; a broken stream usually fails again on close
+        Throwable error = failure;
+        if (null == error) {
+            try {
+                drain();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            if (null == error) {
+                error = e;
+            }
+        }
+        failure = error;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (null != error) {
+            throw new IOException("traffic recording failed", error);
+        }
+    }
+
+    /**
+     * One entry of a traffic log.
+     */
+    public static class SCPITrafficEntry {
+
+        final long offsetNanos;
+        final long durationNanos;
+        final String query;
+
+        SCPITrafficEntry(long offsetNanos, long durationNanos, String query) {
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+            this.query = query;
+        }
+
+        /**
+         *
+         * @return the time at which the message was accepted, in nanoseconds
+         * since recording started
+         */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        /**
+         *
+         * @return the time spent parsing and executing the message, in
+         * nanoseconds
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         *
+         * @return the recorded program message
+         */
+        public String getQuery() {
+            return query;
+        }
+    }
+}
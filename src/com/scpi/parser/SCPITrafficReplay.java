@@ -0,0 +1,241 @@
+/*
+ * Copyright [2014] [Nicholas Folse]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.scpi.parser;
+
+import com.scpi.parser.SCPIParser.SCPIMissingHandlerException;
+import com.scpi.parser.SCPITrafficRecorder.SCPITrafficEntry;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a traffic log captured by {@link SCPITrafficRecorder} against any
+ * {@link SCPIParser} and reports the latency distribution and throughput.
+ *
+ * <p>
+ * Messages can be replayed at their original pace, at an accelerated pace, or
+ * as fast as possible. Handlers are executed for every message, so the parser
+ * should be backed by simulated hardware when benchmarking.</p>
+ *
+ * <h3>Example Usage</h3>
+ * <pre>
+ * {@code List<SCPITrafficEntry> log = SCPITrafficReplay.read(new FileInputStream("traffic.bin"));
+ * SCPIReplayStatistics stats = SCPITrafficReplay.replay(log, new SimpleSCPIParser(), 10.0);
+ * System.out.println(stats);}
+ * </pre>
+ */
+public final class SCPITrafficReplay {
+
+    private SCPITrafficReplay() {
+    }
+
+    /**
+     * Reads all entries of a traffic log. The stream is read to its end but is
+     * not closed. A partial entry at the end of the log (for example, after the
+     * recording process crashed) is ignored.
+     *
+     * @param in a stream containing a traffic log
+     * @return the complete entries of the log in the order they were written
+     * @throws IOException if the log cannot be read, is not a traffic log or
+     * is corrupt
+     */
+    public static List<SCPITrafficEntry> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != SCPITrafficRecorder.MAGIC) {
+            throw new IOException("not an SCPI traffic log");
+        }
+        int version = data.readInt();
+        if (version != SCPITrafficRecorder.VERSION) {
+            throw new IOException("unsupported SCPI traffic log version " + version);
+        }
+        List<SCPITrafficEntry> entries = new ArrayList<>();
+        try {
+            while (true) {
+                long offsetNanos = data.readLong();
+                long durationNanos = data.readLong();
+                int length = data.readInt();
+                if (length < 0 || length > SCPITrafficRecorder.MAX_MESSAGE_LENGTH) {
+                    throw new IOException("corrupt SCPI traffic log");
+                }
+                byte[] message = new byte[length];
+                data.readFully(message);
+                entries.add(new SCPITrafficEntry(offsetNanos, durationNanos, new String(message, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            return entries;
+        }
+    }
+
+    /**
+     * Feeds recorded messages to a parser in the order they were accepted.
+     * Entries are written when <code>accept</code> returns, so a log recorded
+     * from concurrent callers is not necessarily in offset order; the entries
+     * are sorted by offset before replaying.
+     *
+     * <p>
+     * Messages are replayed on the calling thread, one at a time. A log
+     * captured from concurrent callers therefore cannot be replayed with its
+     * original concurrency, and may fall behind its original pace.</p>
+     *
+     * <p>
+     * When the replay is paced (<code>speed</code> greater than zero), the
+     * latency of each message is measured from the time it was due, so time
+     * spent waiting behind a slow message is included (avoiding coordinated
+     * omission). The time spent in <code>accept</code> alone is reported as
+     * the service time. When not paced, latency and service time are
+     * equal.</p>
+     *
+     * @param recorded the recorded messages, as returned by {@link #read read}
+     * @param parser the parser that will accept the messages
+     * @param speed the replay speed relative to the original pace (for
+     * example, 2.0 replays twice as fast). A value of zero or less replays the
+     * messages as fast as possible.
+     * @return latency and throughput statistics for the replay
+     */
+    public static SCPIReplayStatistics replay(List<SCPITrafficEntry> recorded, SCPIParser parser, double speed) {
+        final List<SCPITrafficEntry> entries = new ArrayList<>(recorded);
+        entries.sort(Comparator.comparingLong(SCPITrafficEntry::getOffsetNanos));
+        final long[] latencies = new long[entries.size()];
+        final long[] serviceTimes = new long[entries.size()];
+        int errors = 0;
+        int index = 0;
+        final long firstOffset = entries.isEmpty() ? 0 : entries.get(0).offsetNanos;
+        final long start = System.nanoTime();
+        for (SCPITrafficEntry entry : entries) {
+            long due = 0;
+            if (speed > 0) {
+                due = start + (long) ((entry.offsetNanos - firstOffset) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            long begin = System.nanoTime();
+            try {
+                parser.accept(entry.query);
+            } catch (SCPIMissingHandlerException e) {
+                errors++;
+            }
+            long end = System.nanoTime();
+            serviceTimes[index] = end - begin;
+            latencies[index++] = end - ((speed > 0) ? due : begin);
+        }
+        return new SCPIReplayStatistics(latencies, serviceTimes, errors, System.nanoTime() - start);
+    }
+
+    /**
+     * Latency and throughput statistics of a replay.
+     */
+    public static class SCPIReplayStatistics {
+
+        private final long[] sortedLatencies;
+        private final long[] sortedServiceTimes;
+        private final int errorCount;
+        private final long elapsedNanos;
+
+        SCPIReplayStatistics(long[] latencies, long[] serviceTimes, int errorCount, long elapsedNanos) {
+            this.sortedLatencies = latencies;
+            Arrays.sort(this.sortedLatencies);
+            this.sortedServiceTimes = serviceTimes;
+            Arrays.sort(this.sortedServiceTimes);
+            this.errorCount = errorCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         *
+         * @return the number of messages replayed
+         */
+        public int getCount() {
+            return sortedLatencies.length;
+        }
+
+        /**
+         *
+         * @return the number of messages that raised a
+         * {@link SCPIMissingHandlerException}
+         */
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         *
+         * @return the wall-clock duration of the replay in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         *
+         * @return the number of messages accepted per second
+         */
+        public double getThroughput() {
+            return (elapsedNanos > 0) ? sortedLatencies.length * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * Returns the latency below which the specified fraction of messages
+         * completed. For a paced replay, latency is measured from the time
+         * each message was due.
+         *
+         * @param percentile a value between 0 and 100 (for example, 99.9)
+         * @return the latency in nanoseconds, or 0 if no messages were replayed
+         */
+        public long getLatencyPercentile(double percentile) {
+            return percentile(sortedLatencies, percentile);
+        }
+
+        /**
+         * Returns the time spent in <code>accept</code> below which the
+         * specified fraction of messages completed.
+         *
+         * @param percentile a value between 0 and 100 (for example, 99.9)
+         * @return the service time in nanoseconds, or 0 if no messages were
+         * replayed
+         */
+        public long getServiceTimePercentile(double percentile) {
+            return percentile(sortedServiceTimes, percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.min(sorted.length - 1, Math.max(0, rank))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages (%d errors) in %.3f ms, %.0f messages/s, "
+                    + "latency p50=%d ns p99=%d ns max=%d ns, "
+                    + "service time p50=%d ns p99=%d ns max=%d ns",
+                    getCount(), errorCount, elapsedNanos / 1e6, getThroughput(),
+                    getLatencyPercentile(50), getLatencyPercentile(99), getLatencyPercentile(100),
+                    getServiceTimePercentile(50), getServiceTimePercentile(99), getServiceTimePercentile(100));
+        }
+    }
+}
@@ -17,6 +17,35 @@ package com.scpi.parser.tests;
 
 import com.scpi.parser.SCPIParser;
 import com.scpi.parser.SCPIParser.SCPIMissingHandlerException;
+import com.scpi.parser.SCPIParser.SCPIValidationError;
+import com.scpi.parser.SCPIStreamProcessor;
+import com.scpi.parser.SCPIStreamProcessor.SCPIResponse;
+import com.scpi.parser.SCPISubscriber;
+import com.scpi.parser.SCPISubscription;
+import com.scpi.parser.SCPITrafficRecorder;
+import com.scpi.parser.SCPITrafficRecorder.SCPITrafficEntry;
+import com.scpi.parser.SCPITrafficReplay;
+import com.scpi.parser.SCPITrafficReplay.SCPIReplayStatistics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import junit.framework.Assert;
 import org.junit.Test;
@@ -79,6 +108,476 @@ public class SCPIParserTest {
         }
     }
 
+    /**
+     * Validation should report every unresolved command with its position and
+     * must not execute any handlers.
+     *
+     * @throws java.io.IOException
+     * @throws com.scpi.parser.SCPIParser.SCPIMissingHandlerException
+     */
+    @Test
+    public void testValidate() throws IOException, SCPIMissingHandlerException {
+        String script = "*IDN?;VAR:X 42\n"
+                + "MEAS:VOLTs:DC?;:MEASure:CURR:AC?\n"
+                + "\n"
+                + "MEAS:VOLT:DC?;AX?;:BOGUS";
+        List<SCPIValidationError> errors = parser.validate(script);
+        Assert.assertEquals(3, errors.size());
+        Assert.assertEquals(2, errors.get(0).getLine());
+        Assert.assertEquals(1, errors.get(0).getColumn());
+        Assert.assertEquals("MEASure:VOLTs:DC?", errors.get(0).getPath());
+        Assert.assertEquals(4, errors.get(1).getLine());
+        Assert.assertEquals(15, errors.get(1).getColumn());
+        Assert.assertEquals("MEASure:VOLTage:AX?", errors.get(1).getPath());
+        Assert.assertEquals(4, errors.get(2).getLine());
+        Assert.assertEquals(19, errors.get(2).getColumn());
+        Assert.assertEquals("BOGUS", errors.get(2).getPath());
+
+        List<SCPIValidationError> streamed = parser.validate(new StringReader(script));
+        Assert.assertEquals(errors.toString(), streamed.toString());
+
+        // "VAR:X 42" must not have been executed
+        Assert.assertEquals("0", parser.accept("VAR:X?")[0]);
+
+        Assert.assertEquals(0, parser.validate("VAR:X?").size());
+
+        // characters the lexer would skip must be reported
+        errors = parser.validate("VAR:X -5,3 @");
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals(7, errors.get(0).getColumn());
+        Assert.assertEquals("-", errors.get(0).getUnrecognized());
+        Assert.assertEquals(null, errors.get(0).getPath());
+        Assert.assertEquals(12, errors.get(1).getColumn());
+        Assert.assertEquals("@", errors.get(1).getUnrecognized());
+
+        // argument separators are valid and must not be reported
+        Assert.assertEquals(0, parser.validate("APPL:SIN 1000,2.5").size());
+        Assert.assertEquals(0, parser.validate("APPL:SIN 1000, 2.5 ,0").size());
+        errors = parser.validate("APPL:SIN 1000,-2.5");
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals(15, errors.get(0).getColumn());
+        Assert.assertEquals("-", errors.get(0).getUnrecognized());
+    }
+
+    /**
+     * Streaming validation reads the script in chunks; line numbers must
+     * continue across chunk boundaries and errors must stay in order.
+     *
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testValidateLargeScript() throws IOException {
+        StringBuilder script = new StringBuilder();
+        List<Integer> badLines = new ArrayList<>();
+        for (int line = 1; line <= 20000; line++) {
+            if (line % 997 == 0) {
+                script.append("MEAS:VOLTs:DC?\n");
+                badLines.add(line);
+            } else {
+                script.append("MEAS:VOLT:DC?;:VAR:X ").append(line).append('\n');
+            }
+        }
+        List<SCPIValidationError> errors = parser.validate(new StringReader(script.toString()));
+        Assert.assertEquals(badLines.size(), errors.size());
+        for (int i = 0; i < errors.size(); i++) {
+            Assert.assertEquals((int) badLines.get(i), errors.get(i).getLine());
+        }
+        Assert.assertEquals(errors.toString(), parser.validate(script.toString()).toString());
+    }
+
+    /**
+     * Recorded traffic should be read back in order and replay against a new
+     * parser with the same effect.
+     *
+     * @throws java.io.IOException
+     * @throws com.scpi.parser.SCPIParser.SCPIMissingHandlerException
+     */
+    @Test
+    public void testRecordReplay() throws IOException, SCPIMissingHandlerException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        try (SCPITrafficRecorder recorder = new SCPITrafficRecorder(log)) {
+            parser.setTrafficRecorder(recorder);
+            parser.accept("VAR:X 5");
+            parser.accept("VAR:X?");
+            try {
+                parser.accept("BOGUS?");
+            } catch (SCPIMissingHandlerException e) {
+            }
+            parser.setTrafficRecorder(null);
+        }
+
+        List<SCPITrafficEntry> entries = SCPITrafficReplay.read(new ByteArrayInputStream(log.toByteArray()));
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("VAR:X 5", entries.get(0).getQuery());
+        Assert.assertEquals("VAR:X?", entries.get(1).getQuery());
+        Assert.assertEquals("BOGUS?", entries.get(2).getQuery());
+        Assert.assertTrue(entries.get(0).getOffsetNanos() <= entries.get(1).getOffsetNanos());
+
+        SCPIParser replayParser = new TestSCPIParser();
+        SCPIReplayStatistics statistics = SCPITrafficReplay.replay(entries, replayParser, 0);
+        Assert.assertEquals(3, statistics.getCount());
+        Assert.assertEquals(1, statistics.getErrorCount());
+        Assert.assertEquals("5", replayParser.accept("VAR:X?")[0]);
+        LOG.info(statistics.toString());
+
+        // a log cut off mid-entry keeps its complete entries
+        byte[] truncated = Arrays.copyOf(log.toByteArray(), log.size() - 3);
+        Assert.assertEquals(2, SCPITrafficReplay.read(new ByteArrayInputStream(truncated)).size());
+    }
+
+    /**
+     * Entries from concurrent callers may be logged out of offset order; replay
+     * must still accept them in offset order.
+     *
+     * @throws java.io.IOException
+     * @throws com.scpi.parser.SCPIParser.SCPIMissingHandlerException
+     */
+    @Test
+    public void testReplayOrdersByOffset() throws IOException, SCPIMissingHandlerException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(log);
+        data.writeInt(SCPITrafficRecorder.MAGIC);
+        data.writeInt(SCPITrafficRecorder.VERSION);
+        for (Object[] entry : new Object[][]{{2000000L, "VAR:X 1"}, {0L, "VAR:X 2"}}) {
+            byte[] message = ((String) entry[1]).getBytes("UTF-8");
+            data.writeLong((Long) entry[0]);
+            data.writeLong(0);
+            data.writeInt(message.length);
+            data.write(message);
+        }
+        List<SCPITrafficEntry> entries = SCPITrafficReplay.read(new ByteArrayInputStream(log.toByteArray()));
+        SCPIParser replayParser = new TestSCPIParser();
+        SCPIReplayStatistics statistics = SCPITrafficReplay.replay(entries, replayParser, 1.0);
+        Assert.assertEquals(2, statistics.getCount());
+        Assert.assertEquals("1", replayParser.accept("VAR:X?")[0]);
+        Assert.assertTrue(statistics.getElapsedNanos() >= 2000000L);
+    }
+
+    /**
+     * A recorder whose flusher cannot keep up must drop and count entries
+     * instead of buffering them without limit.
+     *
+     * @throws java.io.IOException
+     * @throws java.lang.InterruptedException
+     */
+    @Test
+    public void testRecorderDropsWhenFull() throws IOException, InterruptedException {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SCPITrafficRecorder recorder = new SCPITrafficRecorder(new OutputStream() {
+            @Override
+            public void write(int b) {
+                log.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    // stall the flusher on its first write
+                    stalled.countDown();
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                log.write(b, off, len);
+            }
+        }, 4);
+        Assert.assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            recorder.record("*IDN?", System.nanoTime(), 0);
+        }
+        Assert.assertEquals(6, recorder.getDroppedCount());
+        released.countDown();
+        recorder.close();
+        Assert.assertEquals(4, SCPITrafficReplay.read(new ByteArrayInputStream(log.toByteArray())).size());
+    }
+
+    /**
+     * A corrupt message length must be reported as an IOException.
+     */
+    @Test
+    public void testReadCorruptLog() {
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            try {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(log);
+                data.writeInt(SCPITrafficRecorder.MAGIC);
+                data.writeInt(SCPITrafficRecorder.VERSION);
+                data.writeLong(0);
+                data.writeLong(0);
+                data.writeInt(length);
+                SCPITrafficReplay.read(new ByteArrayInputStream(log.toByteArray()));
+                Assert.fail("a corrupt length should be rejected");
+            } catch (IOException e) {
+                Assert.assertEquals("corrupt SCPI traffic log", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A paced replay must measure latency from the time each message was due,
+     * so messages delayed behind a slow handler report the delay.
+     *
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReplayLatencyIncludesDelay() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(log);
+        data.writeInt(SCPITrafficRecorder.MAGIC);
+        data.writeInt(SCPITrafficRecorder.VERSION);
+        byte[] message = "SLOW".getBytes("UTF-8");
+        for (int i = 0; i < 3; i++) {
+            // all messages are due at the start of the replay
+            data.writeLong(0);
+            data.writeLong(0);
+            data.writeInt(message.length);
+            data.write(message);
+        }
+        SCPIParser slowParser = new SCPIParser();
+        slowParser.addHandler("SLOW", args -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            return null;
+        });
+        List<SCPITrafficEntry> entries = SCPITrafficReplay.read(new ByteArrayInputStream(log.toByteArray()));
+        SCPIReplayStatistics statistics = SCPITrafficReplay.replay(entries, slowParser, 1.0);
+        Assert.assertTrue(statistics.getLatencyPercentile(100) >= TimeUnit.MILLISECONDS.toNanos(15));
+        Assert.assertTrue(statistics.getServiceTimePercentile(100) < statistics.getLatencyPercentile(100));
+    }
+
+    /**
+     * A recorder whose flusher fails must stop recording and report the
+     * failure when closed.
+     *
+     * @throws java.lang.InterruptedException
+     */
+    @Test
+    public void testRecorderFailure() throws InterruptedException {
+        final SCPITrafficRecorder recorder;
+        try {
+            recorder = new SCPITrafficRecorder(new OutputStream() {
+                int written = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("disk full");
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    // accept the header, then fail
+                    if ((written += len) > 8) {
+                        throw new IOException("disk full");
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Assert.fail(e.toString());
+            return;
+        }
+        recorder.record(null, System.nanoTime(), 0);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("*IDN?;");
+        }
+        recorder.record(large.toString(), System.nanoTime(), 0);
+        try {
+            recorder.close();
+            Assert.fail("close should report the flusher failure");
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        }
+    }
+
+    /**
+     * With coalescing enabled, only the last of consecutive last-write-wins
+     * setters should execute, and queries must still see prior setters.
+     *
+     * @throws com.scpi.parser.SCPIParser.SCPIMissingHandlerException
+     */
+    @Test
+    public void testCoalesceCommands() throws SCPIMissingHandlerException {
+        TestSCPIParser coalescingParser = new TestSCPIParser();
+        String query = "SOUR:VOLT 1;VOLT 1.1;VOLT 1.2;VOLT?;VOLT 2;VOLT 3";
+
+        String[] results = coalescingParser.accept(query);
+        Assert.assertEquals(6, results.length);
+        Assert.assertEquals("1.2", results[3]);
+        Assert.assertEquals(5, coalescingParser.setVoltageCalls);
+
+        coalescingParser.setCoalesceCommands(true);
+        coalescingParser.setVoltageCalls = 0;
+        results = coalescingParser.accept(query);
+        Assert.assertEquals(6, results.length);
+        Assert.assertEquals("1.2", results[3]);
+        Assert.assertEquals(2, coalescingParser.setVoltageCalls);
+        Assert.assertEquals("3", coalescingParser.accept("SOUR:VOLT?")[0]);
+
+        // handlers not declared last-write-wins are never skipped
+        results = coalescingParser.accept("VAR:X 1;X 2;X?");
+        Assert.assertEquals("2", results[2]);
+
+        // a different setter in between is a barrier, so order is preserved
+        coalescingParser.sourceLog.setLength(0);
+        coalescingParser.accept("SOUR:VOLT 1;:SOUR:CURR 2;:SOUR:VOLT 3;:SOUR:VOLT 4");
+        Assert.assertEquals("V1 C2 V4 ", coalescingParser.sourceLog.toString());
+    }
+
+    /**
+     * Queries cannot be declared last-write-wins, since skipping one would
+     * drop its result.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void errorOnLastWriteWinsQuery() {
+        new TestSCPIParser().addHandler("MEASure?", args -> "0", true);
+    }
+
+    /**
+     * The stream processor should only parse messages while the subscriber
+     * has demand, refuse messages beyond its capacity, publish per-message
+     * errors as responses and complete once all buffered messages have been
+     * delivered.
+     */
+    @Test
+    public void testStreamProcessor() {
+        TestSCPIParser streamParser = new TestSCPIParser();
+        SCPIStreamProcessor processor = new SCPIStreamProcessor(streamParser, Runnable::run, 3, 2);
+        ResponseSubscriber subscriber = new ResponseSubscriber(0, 0);
+        processor.subscribe(subscriber);
+
+        Assert.assertTrue(processor.offer("VAR:X 1"));
+        Assert.assertTrue(processor.offer("BOGUS?"));
+        Assert.assertTrue(processor.offer("*IDN?"));
+        Assert.assertFalse(processor.offer("*IDN?"));
+        // nothing is parsed until responses are requested
+        Assert.assertEquals(0, streamParser.varX);
+
+        subscriber.subscription.request(2);
+        Assert.assertEquals(2, subscriber.responses.size());
+        Assert.assertEquals(1, streamParser.varX);
+        Assert.assertTrue(subscriber.responses.get(1).getError() instanceof SCPIMissingHandlerException);
+        Assert.assertEquals(null, subscriber.responses.get(1).getResults());
+        Assert.assertEquals(2, processor.remainingCapacity());
+
+        processor.complete();
+        Assert.assertEquals(1, subscriber.completed.getCount());
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(3, subscriber.responses.size());
+        Assert.assertEquals("SCPI Test Parser", subscriber.responses.get(2).getResults()[0]);
+        Assert.assertEquals(0, subscriber.completed.getCount());
+        Assert.assertEquals(null, subscriber.error);
+    }
+
+    /**
+     * Run a publisher and a slow subscriber on a real thread pool. Responses
+     * must arrive in order, and the processor must never request more messages
+     * from the publisher than it can buffer.
+     *
+     * @throws java.lang.InterruptedException
+     */
+    @Test
+    public void testStreamProcessorConcurrent() throws InterruptedException {
+        final int messages = 20000;
+        final int capacity = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TestSCPIParser streamParser = new TestSCPIParser();
+            SCPIStreamProcessor processor = new SCPIStreamProcessor(streamParser, executor, capacity, 8);
+            ResponseSubscriber subscriber = new ResponseSubscriber(7, 7);
+            MessagePublisher publisher = new MessagePublisher(processor, messages);
+            processor.subscribe(subscriber);
+            processor.onSubscribe(publisher);
+
+            Assert.assertTrue(subscriber.completed.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(null, subscriber.error);
+            Assert.assertEquals(messages, subscriber.responses.size());
+            for (int i = 0; i < messages; i++) {
+                Assert.assertEquals(Integer.toString(i), subscriber.responses.get(i).getResults()[1]);
+            }
+            Assert.assertTrue(publisher.maxDemand.get() <= capacity);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * If the executor rejects a task, the stream must end with onError instead
+     * of hanging, both when a drain is first scheduled and when a batch
+     * yields to a continuation.
+     */
+    @Test
+    public void testStreamProcessorRejectingExecutor() {
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger limit = new AtomicInteger(0);
+        Executor rejecting = task -> {
+            if (accepted.incrementAndGet() > limit.get()) {
+                throw new RejectedExecutionException("executor is full");
+            }
+            task.run();
+        };
+
+        // rejected when the first drain is scheduled
+        SCPIStreamProcessor processor = new SCPIStreamProcessor(new TestSCPIParser(), rejecting, 4, 1);
+        ResponseSubscriber subscriber = new ResponseSubscriber(0, 0);
+        processor.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Assert.assertFalse(processor.offer("*IDN?"));
+        Assert.assertTrue(subscriber.error instanceof RejectedExecutionException);
+        limit.set(Integer.MAX_VALUE);
+        Assert.assertFalse(processor.offer("*IDN?"));
+        Assert.assertEquals(0, subscriber.responses.size());
+
+        // rejected when a full batch yields to its continuation
+        processor = new SCPIStreamProcessor(new TestSCPIParser(), rejecting, 4, 1);
+        subscriber = new ResponseSubscriber(0, 0);
+        processor.subscribe(subscriber);
+        Assert.assertTrue(processor.offer("*IDN?"));
+        Assert.assertTrue(processor.offer("*IDN?"));
+        accepted.set(0);
+        limit.set(1);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(1, subscriber.responses.size());
+        Assert.assertTrue(subscriber.error instanceof RejectedExecutionException);
+        Assert.assertEquals(0, subscriber.completed.getCount());
+    }
+
+    /**
+     * A subscriber that throws must cancel the upstream instead of leaving
+     * the processor stalled.
+     */
+    @Test
+    public void testStreamProcessorThrowingSubscriber() {
+        SCPIStreamProcessor processor = new SCPIStreamProcessor(new TestSCPIParser(), Runnable::run, 4, 4);
+        final AtomicInteger upstreamCancelled = new AtomicInteger();
+        processor.onSubscribe(new SCPISubscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+                upstreamCancelled.incrementAndGet();
+            }
+        });
+        ResponseSubscriber subscriber = new ResponseSubscriber(0, 0) {
+            @Override
+            public void onNext(SCPIResponse item) {
+                throw new IllegalStateException("subscriber failure");
+            }
+        };
+        processor.subscribe(subscriber);
+        processor.onNext("*IDN?");
+        try {
+            subscriber.subscription.request(1);
+            Assert.fail("the subscriber exception should be rethrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("subscriber failure", e.getMessage());
+        }
+        Assert.assertEquals(1, upstreamCancelled.get());
+        Assert.assertFalse(processor.offer("*IDN?"));
+    }
+
     /**
      * Test read-style query performance (with caching). This test should run
      * very quickly with caching enabled. If the cache is disabled (e.g.
@@ -124,11 +623,158 @@ public class SCPIParserTest {
         //System.out.println(parser.getCacheFrequency());
     }
 
+    /**
+     * Stress the accept cache from many threads. Cache hits use a small set of
+     * queries that always fit in the cache; cache misses cycle through more
+     * unique queries than the cache holds, forcing constant eviction. Every
+     * result is checked, so a lookup that observes a concurrent eviction fails
+     * the test. Throughput per thread count is logged for comparison.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSCPIParserConcurrentAccept() throws Exception {
+        parser.setCacheSizeLimit(20);
+        final int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long hitNanos = runConcurrentAccept(threads, 4, 200000);
+            long missNanos = runConcurrentAccept(threads, 64, 20000);
+            LOG.info(String.format("%d threads: hits %.0f queries/ms, misses %.0f queries/ms",
+                    threads, threads * 200000 / (hitNanos / 1e6), threads * 20000 / (missNanos / 1e6)));
+        }
+    }
+
+    private long runConcurrentAccept(int threads, final int uniqueQueries, final int iterations) throws Exception {
+        final String[] queries = new String[uniqueQueries];
+        StringBuilder query = new StringBuilder("*IDN?");
+        for (int i = 0; i < uniqueQueries; i++) {
+            queries[i] = query.toString();
+            query.append(";*IDN?");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                tasks.add(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        int index = (i + offset) % uniqueQueries;
+                        String[] results = parser.accept(queries[index]);
+                        Assert.assertEquals(index + 1, results.length);
+                        Assert.assertEquals("SCPI Test Parser", results[index]);
+                    }
+                    return null;
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Collects responses, requesting <code>initial</code> responses on
+     * subscription and <code>batch</code> more after every <code>batch</code>
+     * responses (0 to request manually).
+     */
+    private static class ResponseSubscriber implements SCPISubscriber<SCPIResponse> {
+
+        final List<SCPIResponse> responses = new ArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final int initial;
+        final int batch;
+        volatile SCPISubscription subscription;
+        volatile Throwable error;
+
+        ResponseSubscriber(int initial, int batch) {
+            this.initial = initial;
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(SCPISubscription subscription) {
+            this.subscription = subscription;
+            if (initial > 0) {
+                subscription.request(initial);
+            }
+        }
+
+        @Override
+        public void onNext(SCPIResponse item) {
+            responses.add(item);
+            if (batch > 0 && responses.size() % batch == 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Publishes "VAR:X i;X?" messages to a processor, honouring its demand.
+     */
+    private static class MessagePublisher implements SCPISubscription {
+
+        final SCPIStreamProcessor processor;
+        final int total;
+        final AtomicLong demand = new AtomicLong();
+        final AtomicLong maxDemand = new AtomicLong();
+        final AtomicInteger wip = new AtomicInteger();
+        int next = 0;
+        volatile boolean cancelled = false;
+
+        MessagePublisher(SCPIStreamProcessor processor, int total) {
+            this.processor = processor;
+            this.total = total;
+        }
+
+        @Override
+        public void request(long n) {
+            long current = demand.addAndGet(n);
+            maxDemand.accumulateAndGet(current, Math::max);
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!cancelled && next < total && demand.get() > 0) {
+                    demand.decrementAndGet();
+                    processor.onNext("VAR:X " + next + ";X?");
+                    if (++next == total) {
+                        processor.onComplete();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
     private static class TestSCPIParser extends SCPIParser {
 
         int varX = 0;
         double voltsDC = 2.23;
         double ampsAC = 0.123;
+        String sourceVolts = "0";
+        int setVoltageCalls = 0;
+        final StringBuilder sourceLog = new StringBuilder();
 
         TestSCPIParser() {
             addHandler("*IDN?", this::IDN);
@@ -138,6 +784,10 @@ public class SCPIParserTest {
             addHandler("CONCAT", this::concat);
             addHandler("MEASure:VOLTage:DC?", this::measVoltsDC);
             addHandler("MEASure:CURRent:AC?", this::measCurrentAC);
+            addHandler("SOURce:VOLTage", this::setVoltage, true);
+            addHandler("SOURce:VOLTage?", this::getVoltage);
+            addHandler("SOURce:CURRent", this::setCurrent, true);
+            addHandler("APPLy:SINusoid", this::concat);
         }
 
         String concat(String[] args) {
@@ -174,6 +824,26 @@ public class SCPIParserTest {
         String measCurrentAC(String[] args) {
             return Double.toString(ampsAC);
         }
+
+        String setVoltage(String[] args) {
+            setVoltageCalls++;
+            if (args.length >= 1) {
+                sourceVolts = args[0];
+                sourceLog.append('V').append(args[0]).append(' ');
+            }
+            return null;
+        }
+
+        String setCurrent(String[] args) {
+            if (args.length >= 1) {
+                sourceLog.append('C').append(args[0]).append(' ');
+            }
+            return null;
+        }
+
+        String getVoltage(String[] args) {
+            return sourceVolts;
+        }
     }
 
 }